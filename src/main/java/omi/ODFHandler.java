@@ -21,6 +21,7 @@ import omi.messages.Messages;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An abstract class to define an ODF handler
@@ -28,6 +29,7 @@ import java.util.TimeZone;
 public abstract class ODFHandler {
 
     private Graph _graph;
+    private final ConcurrentHashMap<String, OMIPathTrie> _tries = new ConcurrentHashMap<>();
 
     /**
      * Get the greycat grapph
@@ -47,6 +49,91 @@ public abstract class ODFHandler {
         this._graph = graph;
     }
 
+    /**
+     * Register the trie of the resources of a server, used to route the parsed values
+     *
+     * @param sourceUrl Source server
+     * @param trie      Trie of the registered resources
+     */
+    void setPathTrie(String sourceUrl, OMIPathTrie trie) {
+        _tries.put(sourceUrl, trie);
+    }
+
+    /**
+     * Get the trie of the resources registered on a server
+     *
+     * @param sourceUrl Source server
+     * @return Trie of the registered resources, null if the server is unknown
+     */
+    public OMIPathTrie getPathTrie(String sourceUrl) {
+        return _tries.get(sourceUrl);
+    }
+
+    /**
+     * Find the greycat node of a parsed InfoItem without any graph lookup
+     *
+     * @param sourceUrl Source server
+     * @param ids       Ordered list of Object ids
+     * @param infoItem  InfoItem name
+     * @return Greycat id of the resource, OMIPathTrie.NOT_FOUND otherwise
+     */
+    public long route(String sourceUrl, String[] ids, String infoItem) {
+        OMIPathTrie trie = _tries.get(sourceUrl);
+        return trie == null ? OMIPathTrie.NOT_FOUND : trie.route(ids, infoItem);
+    }
+
+    /**
+     * Split a path into Object ids, reusing the segments of the registered resources.
+     * Each call returns its own array, which the buildHierarchy implementations are free to modify.
+     *
+     * @param path Path to follow
+     * @return Ordered list of ids
+     */
+    private String[] ids(String path) {
+        for (OMIPathTrie trie : _tries.values()) {
+            String[] ids = trie.segments(path);
+            if (ids != null) {
+                return ids;
+            }
+        }
+        return path.split("/");
+    }
+
+    /**
+     * Build the ODF hierarchy of a trie level, the Objects sharing a prefix are only written once
+     *
+     * @param node Trie level
+     * @return ODF hierarchy
+     */
+    public String buildHierarchy(OMIPathTrie.Node node) {
+        StringBuilder builder = new StringBuilder();
+        buildHierarchy(node, builder);
+        return builder.toString();
+    }
+
+    private void buildHierarchy(OMIPathTrie.Node node, StringBuilder builder) {
+        for (String infoItem : node.infoItems()) {
+            builder.append(valueToODF(null, infoItem.isEmpty() ? null : infoItem));
+        }
+        for (OMIPathTrie.Node child : node.children()) {
+            builder.append("<Object><id>").append(child.id()).append("</id>");
+            buildHierarchy(child, builder);
+            builder.append("</Object>");
+        }
+    }
+
+    /**
+     * Build a single READ message for all the resources registered on a server
+     *
+     * @param sourceUrl Source server
+     * @return READ message
+     */
+    public String readRegisteredMessage(String sourceUrl) {
+        OMIPathTrie trie = _tries.get(sourceUrl);
+        String hierarchy = trie == null ? "" : buildHierarchy(trie.root());
+        return Messages.envelope("<omi:read msgformat=\"odf\"><omi:msg><Objects xmlns=\"odf.xsd\">" + hierarchy + "</Objects></omi:msg></omi:read>", 0);
+    }
+
     public String buildHierarchy(String[] ids, String infoItem) {
         return buildHierarchy(ids, null, infoItem);
     }
@@ -58,7 +145,7 @@ public abstract class ODFHandler {
      * @return READ message
      */
     public String readMessage(String path, String infoItem) {
-        return Messages.envelope("<omi:read msgformat=\"odf\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(path.split("/"), infoItem) + "</Objects></omi:msg></omi:read>", 0);
+        return Messages.envelope("<omi:read msgformat=\"odf\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(ids(path), infoItem) + "</Objects></omi:msg></omi:read>", 0);
     }
 
     /**
@@ -70,15 +157,41 @@ public abstract class ODFHandler {
      * @return READ message
      */
     public String readMessage(String path, String begin, String end, String infoItem) {
-        return Messages.envelope("<omi:read msgformat=\"odf\"  end=\"" + end + "\" begin=\"" + begin + "\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(path.split("/"), infoItem) + "</Objects></omi:msg></omi:read>", 0);
+        return readMessage(path, begin, end, infoItem, 0);
+    }
+
+    /**
+     * Build the READ message for a given path in a timeframe
+     *
+     * @param path  Path to follow
+     * @param begin Begin date as formatted string
+     * @param end   End date as formatted string
+     * @param ttl   Time to live of the request (s)
+     * @return READ message
+     */
+    public String readMessage(String path, String begin, String end, String infoItem, int ttl) {
+        return Messages.envelope("<omi:read msgformat=\"odf\"  end=\"" + end + "\" begin=\"" + begin + "\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(ids(path), infoItem) + "</Objects></omi:msg></omi:read>", ttl);
     }
 
     public String readAmountMessage(String path, int amount, String take, String infoItem) {
+        return readAmountMessage(path, amount, take, infoItem, 0);
+    }
+
+    /**
+     * Build the READ message of the newest or oldest values for a given path
+     *
+     * @param path   Path to follow
+     * @param amount Number of values
+     * @param take   NEWEST or OLDEST
+     * @param ttl    Time to live of the request (s)
+     * @return READ message
+     */
+    public String readAmountMessage(String path, int amount, String take, String infoItem, int ttl) {
         switch (take) {
             case OMIConstants.NEWEST:
-                return Messages.envelope("<omi:read msgformat=\"odf\" newest=\"" + amount + "\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(path.split("/"), infoItem) + "</Objects></omi:msg></omi:read>", 0);
+                return Messages.envelope("<omi:read msgformat=\"odf\" newest=\"" + amount + "\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(ids(path), infoItem) + "</Objects></omi:msg></omi:read>", ttl);
             case OMIConstants.OLDEST:
-                return Messages.envelope("<omi:read msgformat=\"odf\" oldest=\"" + amount + "\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(path.split("/"), infoItem) + "</Objects></omi:msg></omi:read>", 0);
+                return Messages.envelope("<omi:read msgformat=\"odf\" oldest=\"" + amount + "\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(ids(path), infoItem) + "</Objects></omi:msg></omi:read>", ttl);
             default:
                 throw new RuntimeException("Only " + OMIConstants.NEWEST + " and " + OMIConstants.OLDEST + " are supported by the O-MI/O-DF specification");
         }
@@ -106,7 +219,7 @@ public abstract class ODFHandler {
      * @return WRITE message
      */
     public String writeMessage(String path, Object value, String infoItem) {
-        return Messages.envelope("<omi:write msgformat=\"odf\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(path.split("/"), value, infoItem) + "</Objects></omi:msg></omi:write>", 0);
+        return Messages.envelope("<omi:write msgformat=\"odf\"><omi:msg><Objects xmlns=\"odf.xsd\">" + buildHierarchy(ids(path), value, infoItem) + "</Objects></omi:msg></omi:write>", 0);
     }
 
     /**
@@ -15,6 +15,7 @@
  */
 package omi;
 
+import org.eclipse.jetty.io.ssl.SslHandshakeListener;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketException;
@@ -22,9 +23,18 @@ import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.*;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
 import java.net.URI;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,20 +42,38 @@ import java.util.regex.Pattern;
  * The websocket transmitting the OMI request and ODF data structures
  */
 @WebSocket(maxTextMessageSize = 1048576, maxBinaryMessageSize = 1048576)
-public class OMIConnector {
+public class OMIConnector implements OMILimiter.Channel {
 
     private SslContextFactory sslContextFactory = new SslContextFactory();
     private WebSocketClient client;
-    private Session currentSession;
+    private volatile Session currentSession;
     private ODFHandler _handler;
     private String _url;
-    private Boolean isConnected;
+    private volatile boolean isConnected;
+    private OMILimiter _limiter;
+    private volatile OMIRecorder _recorder;
+    private ExecutorService _connectExecutor;
+    private AtomicBoolean _connecting = new AtomicBoolean(false);
+    private AtomicBoolean _reconnectRequested = new AtomicBoolean(false);
+    private volatile boolean _closed = false;
+    private volatile long _handshakeStart;
+    private AtomicLong _handshakes = new AtomicLong();
+    private AtomicLong _resumedHandshakes = new AtomicLong();
+    private AtomicLong _handshakeTimeTotal = new AtomicLong();
+    private volatile long _lastHandshakeTime = -1;
+    private Random _random = new Random();
 
     int tries = 0;
     private int MAX_TRIES = 10;
+    private static final long REQUEST_TIMEOUT = 30 * 1000L;
+    private static final int RECONNECT_JITTER = 5 * 1000;
+    private static final Pattern RETURN_CODE = Pattern.compile("returnCode=\"([0-9]{3})\"");
+
+    public static final int DEFAULT_SSL_SESSION_CACHE_SIZE = 64;
+    public static final int DEFAULT_SSL_SESSION_TIMEOUT = 24 * 60 * 60;
 
     /**
-     * Build the websocket
+     * Build the websocket, with the default TLS session cache
      *
      * @param url                Server url (eg. wss://omiserver/)
      * @param _maxMessageSize    max message size
@@ -53,55 +81,139 @@ public class OMIConnector {
      * @param odfHandler response handler
      */
     public OMIConnector(String url, int _maxMessageSize, long _maxIdleTime, ODFHandler odfHandler) {
+        this(url, _maxMessageSize, _maxIdleTime, odfHandler, DEFAULT_SSL_SESSION_CACHE_SIZE, DEFAULT_SSL_SESSION_TIMEOUT);
+    }
+
+    /**
+     * Build the websocket and start warming up the connection (TCP, TLS handshake and websocket upgrade) in background.
+     * The requests submitted to the limiter are held until the connection is established.
+     * The TLS client session cache, through which reconnections resume the session instead of doing a full handshake,
+     * is sized and expired upon the given settings.
+     *
+     * @param url                Server url (eg. wss://omiserver/)
+     * @param _maxMessageSize    max message size
+     * @param _maxIdleTime       max idle time
+     * @param odfHandler         response handler
+     * @param sslSessionCacheSize Number of cached TLS sessions, 0 disables the session resumption
+     * @param sslSessionTimeout  Validity (s) of a cached TLS session
+     */
+    public OMIConnector(String url, int _maxMessageSize, long _maxIdleTime, ODFHandler odfHandler, int sslSessionCacheSize, int sslSessionTimeout) {
         _handler = odfHandler;
         _url = url;
         sslContextFactory.setTrustAll(true);
+        // Without caching, the engines are created without peer host and port, hence cannot resume a session
+        sslContextFactory.setSessionCachingEnabled(sslSessionCacheSize > 0);
         client = new WebSocketClient(sslContextFactory);
+        _limiter = new OMILimiter(this, REQUEST_TIMEOUT);
+        _connectExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "OMIConnector[" + url + "]");
+            thread.setDaemon(true);
+            return thread;
+        });
 
         try {
             client.getPolicy().setIdleTimeout(_maxIdleTime);
             client.setMaxTextMessageBufferSize(_maxMessageSize);
+            client.getHttpClient().addBean(new SslHandshakeListener() {
+                @Override
+                public void handshakeSucceeded(Event event) {
+                    // A resumed session was created by a previous handshake
+                    SSLSession session = event.getSSLEngine().getSession();
+                    if (session.getCreationTime() < _handshakeStart) {
+                        _resumedHandshakes.incrementAndGet();
+                    }
+                }
+            });
             client.start();
 
-            reconnect();
+            if (sslSessionCacheSize > 0) {
+                // The cache settings of the factory only apply to the server side sessions
+                SSLSessionContext sessions = sslContextFactory.getSslContext().getClientSessionContext();
+                sessions.setSessionCacheSize(sslSessionCacheSize);
+                sessions.setSessionTimeout(sslSessionTimeout);
+            }
 
-            System.out.println("session = " + currentSession);
+            warmUp(0);
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Start recording the frames sent and received by the websocket
+     *
+     * @param path      Path of the log file, overwritten if it exists
+     * @param resources Resources registered on the server, recreated by the replay
+     * @throws IOException if the log file cannot be created
+     */
+    public void startRecording(String path, Collection<OMIRecorder.Resource> resources) throws IOException {
+        OMIRecorder previous = _recorder;
+        _recorder = new OMIRecorder(path, _url, resources);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Stop recording the frames and close the log file
+     */
+    public void stopRecording() {
+        OMIRecorder recorder = _recorder;
+        _recorder = null;
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
     /**
      * Send a message (upon the ODF format) through the websocket
      *
      * @param message ODF message
+     * @return True if the message was handed to the websocket, false if it is not connected
      */
-    public void send(String message) {
-        if (isConnected) {
+    public boolean send(String message) {
+        return send(message, null);
+    }
+
+    /**
+     * Send a message (upon the ODF format) through the websocket
+     *
+     * @param message   ODF message
+     * @param onFailure Called if the asynchronous write fails, may be null
+     * @return True if the message was handed to the websocket, false if it is not connected
+     */
+    @Override
+    public boolean send(String message, Runnable onFailure) {
+        Session session = currentSession;
+        if (isConnected && session != null) {
             try {
-                currentSession.getRemote().sendString(message, new WriteCallback() {
+                session.getRemote().sendString(message, new WriteCallback() {
                     @Override
                     public void writeFailed(Throwable throwable) {
-                        if (throwable.getMessage().equals("Blocking message pending 10000 for BLOCKING")) {
-                            // Retry the sending
-                            send(message);
-                        } else {
-                            throwable.printStackTrace();
+                        System.err.println("Websocket write failed: " + throwable.getMessage());
+                        if (onFailure != null) {
+                            onFailure.run();
                         }
                     }
 
                     @Override
                     public void writeSuccess() {
-                        //Nothing
+                        // Only the frames actually written are recorded
+                        OMIRecorder recorder = _recorder;
+                        if (recorder != null) {
+                            recorder.record(OMIRecorder.SENT, message);
+                        }
                     }
                 });
+                return true;
             } catch (WebSocketException e) {
                 if (!e.getMessage().contains("current state [CLOSED]")) {
                     e.printStackTrace(); // Drop closed exception as the reconnection is handled by onClose, code=1006
                 }
             }
         }
+        return false;
     }
 
     /**
@@ -109,7 +221,11 @@ public class OMIConnector {
      */
     public void close() {
         try {
+            _closed = true;
             isConnected = false;
+            _limiter.stop();
+            _connectExecutor.shutdownNow();
+            stopRecording();
             client.stop();
         } catch (Exception e) {
             e.printStackTrace();
@@ -119,17 +235,21 @@ public class OMIConnector {
     @OnWebSocketConnect
     public void onConnect(Session sess) {
         System.out.println("Websocket connected to " + sess.getRemote().getInetSocketAddress().toString());
+        // Published before the flag, onConnect runs before the connection attempt gets the session
+        currentSession = sess;
         isConnected = true;
     }
 
     @OnWebSocketClose
     public void onClose(int statusCode, String reason) {
         isConnected = false;
+        _limiter.onDisconnect();
         System.err.println(new Date() + " - WS Closed. statusCode = [" + statusCode + "], reason = [" + reason + "]");
         switch (statusCode) {
             case 1006: // WebSocket Read EOF -> restart the websocket
                 System.out.println("Reconnecting the websocket...");
-                reconnect();
+                // Spread the reconnections of the gateways sharing the node after a network blip
+                warmUp(_random.nextInt(RECONNECT_JITTER));
                 break;
             case 1001:
                 System.out.println("Websocket shutdown");
@@ -149,62 +269,162 @@ public class OMIConnector {
 
     @OnWebSocketMessage
     public void onMessage(String msg) {
-        Pattern p = Pattern.compile("returnCode=\"([0-9]{3})\"");
-        Matcher m = p.matcher(msg);
-        if (m.find()) {
-            int code = Integer.parseInt(m.group(1));
-            switch (code) {
-                case 200:
-                    _handler.parse(msg, _url);
-                    break;
-                case 404:
-                    System.err.println("Path not found or no fresher values [msg=" + msg + "]");
-                    break;
-                case 400:
-                    System.err.println("Bad request [msg=" + msg + "]");
-                    break;
-                case 500:
-                    System.err.println("Server internal error [msg=" + msg + "]");
-                    break;
-            }
-        } else {
-            System.err.println("Received a non-valid ODF message [msg=" + msg + "]");
+        OMIRecorder recorder = _recorder;
+        if (recorder != null) {
+            recorder.record(OMIRecorder.RECEIVED, msg);
         }
+        int code = returnCode(msg);
+        if (code != -1) {
+            _limiter.onResponse(code);
+        }
+        handle(msg, code, _handler, _url);
     }
 
-    private void reconnect() {
+    /**
+     * Extract the return code of an O-MI response
+     *
+     * @param msg O-MI response
+     * @return The return code, -1 if the message has none
+     */
+    static int returnCode(String msg) {
+        Matcher m = RETURN_CODE.matcher(msg);
+        return m.find() ? Integer.parseInt(m.group(1)) : -1;
+    }
 
-        try {
-            client.start();
-            Future<Session> fut = client.connect(this, URI.create(this._url));
-            currentSession = fut.get();
-            tries = 0;
-            isConnected = true;
-        } catch (Exception e) {
-            isConnected = false;
-            System.err.println("Connection error: " + e.getMessage());
-            if (++tries < MAX_TRIES) {
-                System.out.println("Reconnecting in " + tries * 10 + " seconds...");
-                try {
-                    Thread.sleep(tries * 10 * 1000);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
+    /**
+     * Handle an O-MI response upon its return code, the values of successful responses being parsed by the handler.
+     * Shared with the replay, which feeds recorded responses without a connection.
+     *
+     * @param msg       O-MI response
+     * @param code      Return code of the response, -1 if it has none
+     * @param handler   response handler
+     * @param sourceUrl Url of the server
+     */
+    static void handle(String msg, int code, ODFHandler handler, String sourceUrl) {
+        switch (code) {
+            case -1:
+                System.err.println("Received a non-valid ODF message [msg=" + msg + "]");
+                break;
+            case 200:
+                handler.parse(msg, sourceUrl);
+                break;
+            case 404:
+                System.err.println("Path not found or no fresher values [msg=" + msg + "]");
+                break;
+            case 400:
+                System.err.println("Bad request [msg=" + msg + "]");
+                break;
+            case 500:
+                System.err.println("Server internal error [msg=" + msg + "]");
+                break;
+        }
+    }
+
+    private void warmUp(long delay) {
+        if (_closed) {
+            return;
+        }
+        // Raised before the check, so that an attempt in progress cannot miss a close racing its end
+        _reconnectRequested.set(true);
+        if (!_connecting.compareAndSet(false, true)) {
+            return;
+        }
+        _connectExecutor.execute(() -> {
+            try {
+                Thread.sleep(delay);
+                // The session established by an attempt may already be closed, eg. by a 1006 before the attempt returned
+                while (_reconnectRequested.getAndSet(false) && !isConnected && !_closed) {
+                    reconnect();
                 }
-            } else {
-                System.err.println("Cannot connect to O-MI node... Retry in 60min");
-                try {
-                    Thread.sleep(3600 * 1000);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
+            } catch (InterruptedException e) {
+                // Closed
+            } finally {
+                _connecting.set(false);
+                if (_reconnectRequested.get() && !isConnected) {
+                    warmUp(_random.nextInt(RECONNECT_JITTER));
                 }
             }
-            reconnect();
-        }
+        });
+    }
 
+    private void reconnect() throws InterruptedException {
+        while (!_closed) {
+            try {
+                client.start();
+                _handshakeStart = System.currentTimeMillis();
+                Future<Session> fut = client.connect(this, URI.create(this._url));
+                fut.get();
+                long handshakeTime = System.currentTimeMillis() - _handshakeStart;
+                _lastHandshakeTime = handshakeTime;
+                _handshakeTimeTotal.addAndGet(handshakeTime);
+                _handshakes.incrementAndGet();
+                System.out.println("Websocket to " + _url + " established in " + handshakeTime + "ms");
+                tries = 0;
+                // isConnected is left to onConnect and onClose, the session may already be closed
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                System.err.println("Connection error: " + e.getMessage());
+                if (++tries < MAX_TRIES) {
+                    System.out.println("Reconnecting in " + tries * 10 + " seconds...");
+                    Thread.sleep(tries * 10 * 1000 + _random.nextInt(RECONNECT_JITTER));
+                } else {
+                    System.err.println("Cannot connect to O-MI node... Retry in 60min");
+                    Thread.sleep(3600 * 1000 + _random.nextInt(RECONNECT_JITTER));
+                }
+            }
+        }
     }
 
     public ODFHandler getHandler() {
         return _handler;
     }
 
+    /**
+     * Get the limiter through which the requests to the server must be submitted
+     *
+     * @return The limiter of the server
+     */
+    public OMILimiter getLimiter() {
+        return _limiter;
+    }
+
+    public String getUrl() {
+        return _url;
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    /**
+     * @return Number of connections established (TCP, TLS handshake and websocket upgrade)
+     */
+    public long getHandshakeCount() {
+        return _handshakes.get();
+    }
+
+    /**
+     * @return Number of TLS handshakes that resumed a cached session
+     */
+    public long getResumedHandshakeCount() {
+        return _resumedHandshakes.get();
+    }
+
+    /**
+     * @return Duration (ms) of the last connection establishment, -1 if never connected
+     */
+    public long getLastHandshakeTime() {
+        return _lastHandshakeTime;
+    }
+
+    /**
+     * @return Mean duration (ms) of the connection establishments, -1 if never connected
+     */
+    public double getMeanHandshakeTime() {
+        long count = _handshakes.get();
+        return count == 0 ? -1 : (double) _handshakeTimeTotal.get() / count;
+    }
+
 }
@@ -28,4 +28,14 @@ public class OMIConstants {
     public static final String OLDEST = "oldest";
     public static final String TS_LAST_VALUE_RECEIVED = "last_value_ts";
 
+    public static final String STORAGE = "storage";
+    public static final String STORAGE_COMPACT = "compact";
+    public static final String CHUNKS = "chunks";
+    public static final String CHUNK_STARTS = "chunk_starts";
+    public static final String CHUNK_IDS = "chunk_ids";
+    public static final String CHUNK_SIZE = "chunk_size";
+    public static final String CHUNK_START = "start";
+    public static final String CHUNK_TIMES = "times";
+    public static final String CHUNK_VALUES = "values";
+
 }
@@ -0,0 +1,366 @@
+/**
+ * Copyright 2017 The GreyCat Authors.  All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package omi;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Adaptive limiter of the requests sent to a single O-MI server.
+ * The number of requests in flight and the sending rate are both driven by an AIMD control loop:
+ * they grow slowly while the server answers within the latency tolerance, and are halved on 5xx responses or timeouts.
+ * Pending requests are queued by priority (writes, overdue reads, then regular reads).
+ * Reads carry a deadline: they are dropped once expired, and a newer read of the same resource replaces the queued one.
+ */
+public class OMILimiter {
+
+    public static final int PRIORITY_WRITE = 0;
+    public static final int PRIORITY_OVERDUE_READ = 1;
+    public static final int PRIORITY_READ = 2;
+
+    private static final double MIN_LIMIT = 1;
+    private static final double MAX_LIMIT = 64;
+    private static final double INITIAL_LIMIT = 4;
+    private static final double MIN_RATE = 1;
+    private static final double MAX_RATE = 1000;
+    private static final double INITIAL_RATE = 20;
+    private static final double BACKOFF = 0.5;
+    private static final double LATENCY_BACKOFF = 0.95;
+    private static final double RTT_TOLERANCE = 2.0;
+    private static final int MIN_RTT_WINDOW = 1000;
+    private static final long IDLE_WAIT = 100;
+
+    private final Channel _channel;
+    private final long _timeout;
+    private final PriorityQueue<Pending> _queue = new PriorityQueue<>();
+    private final ArrayDeque<Long> _inFlight = new ArrayDeque<>();
+    private final HashMap<String, Long> _lastDispatch = new HashMap<>();
+    private final HashMap<String, Pending> _queuedReads = new HashMap<>();
+    private final Thread _dispatcher;
+
+    private volatile boolean _running = true;
+    private double _limit = INITIAL_LIMIT;
+    private double _rate = INITIAL_RATE;
+    private double _tokens = 1;
+    private long _lastRefill = System.currentTimeMillis();
+    private long _minRtt = Long.MAX_VALUE;
+    private double _smoothedRtt = 0;
+    private int _samples = 0;
+    private long _lastDecrease = 0;
+    private long _seq = 0;
+    private long _expired = 0;
+    private int _unanswered = 0;
+    private long _lastTimeout = 0;
+    private long _superseded = 0;
+
+    /**
+     * Connection through which the limiter sends the requests, implemented by OMIConnector
+     */
+    public interface Channel {
+
+        String getUrl();
+
+        boolean isConnected();
+
+        /**
+         * Send a message
+         *
+         * @param message   O-MI message
+         * @param onFailure Called if the message was handed but could not be written
+         * @return False if the message could not be handed, eg. the channel is closed
+         */
+        boolean send(String message, Runnable onFailure);
+    }
+
+    /**
+     * Build the limiter and start its dispatching thread
+     *
+     * @param channel Websocket used to send the requests
+     * @param timeout Delay (ms) after which a request without response is considered as lost
+     */
+    public OMILimiter(Channel channel, long timeout) {
+        _channel = channel;
+        _timeout = timeout;
+        _dispatcher = new Thread(this::dispatch, "OMILimiter[" + channel.getUrl() + "]");
+        _dispatcher.setDaemon(true);
+        _dispatcher.start();
+    }
+
+    /**
+     * Queue a request without deadline to be sent as soon as the limiter allows it
+     *
+     * @param key      Identifier of the requested resource
+     * @param message  O-MI message
+     * @param priority One of PRIORITY_WRITE, PRIORITY_OVERDUE_READ, PRIORITY_READ
+     */
+    public void submit(String key, String message, int priority) {
+        submit(key, message, priority, Long.MAX_VALUE);
+    }
+
+    /**
+     * Queue a request to be sent as soon as the limiter allows it.
+     * A read still queued for the same resource is superseded: the new message takes its place in the queue.
+     *
+     * @param key      Identifier of the requested resource
+     * @param message  O-MI message
+     * @param priority One of PRIORITY_WRITE, PRIORITY_OVERDUE_READ, PRIORITY_READ
+     * @param deadline Timestamp (ms) after which the request is dropped instead of being sent
+     */
+    public synchronized void submit(String key, String message, int priority, long deadline) {
+        if (priority == PRIORITY_WRITE) {
+            _queue.add(new Pending(key, message, priority, _seq++, deadline));
+        } else {
+            Pending queued = _queuedReads.get(key);
+            if (queued == null) {
+                queued = new Pending(key, message, priority, _seq++, deadline);
+                _queuedReads.put(key, queued);
+                _queue.add(queued);
+            } else {
+                _superseded++;
+                queued.message = message;
+                queued.deadline = deadline;
+                if (priority < queued.priority) {
+                    _queue.remove(queued);
+                    queued.priority = priority;
+                    _queue.add(queued);
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Time of the last dispatch of a request for a given resource
+     *
+     * @param key Identifier of the requested resource
+     * @return Timestamp (ms) of the last dispatch, 0 if none
+     */
+    public synchronized long lastDispatch(String key) {
+        Long last = _lastDispatch.get(key);
+        return last == null ? 0 : last;
+    }
+
+    /**
+     * Forget a resource removed from the scheduler: its dispatch history and queued read are dropped
+     *
+     * @param key Identifier of the resource
+     */
+    public synchronized void forget(String key) {
+        _lastDispatch.remove(key);
+        Pending queued = _queuedReads.remove(key);
+        if (queued != null) {
+            _queue.remove(queued);
+        }
+    }
+
+    /**
+     * Notify the limiter of a response of the server.
+     * Responses are matched to the oldest request in flight, O-MI one-time reads carrying no request id.
+     * The late responses of the requests which timed out are discarded, as they would be matched to recent requests.
+     *
+     * @param returnCode O-MI return code
+     */
+    public synchronized void onResponse(int returnCode) {
+        long now = System.currentTimeMillis();
+        if (_unanswered > 0) {
+            if (now - _lastTimeout <= _timeout) {
+                _unanswered--;
+                return;
+            }
+            // No late response for a whole timeout, the timed out requests are considered as lost
+            _unanswered = 0;
+        }
+        Long sent = _inFlight.pollFirst();
+        if (sent == null) {
+            return;
+        }
+        if (returnCode >= 500) {
+            decrease(now, BACKOFF);
+        } else {
+            long rtt = now - sent;
+            if (++_samples >= MIN_RTT_WINDOW) {
+                // Let the minimum follow the server when its baseline latency moves
+                _minRtt = (long) _smoothedRtt;
+                _samples = 0;
+            }
+            _minRtt = Math.min(_minRtt, rtt);
+            _smoothedRtt = _smoothedRtt == 0 ? rtt : 0.9 * _smoothedRtt + 0.1 * rtt;
+            if (rtt > RTT_TOLERANCE * Math.max(_minRtt, 1)) {
+                decrease(now, LATENCY_BACKOFF);
+            } else {
+                _limit = Math.min(MAX_LIMIT, _limit + 1 / _limit);
+                _rate = Math.min(MAX_RATE, _rate + 1 / _limit);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Forget the requests in flight, their responses will never come once the websocket is closed
+     */
+    public synchronized void onDisconnect() {
+        _inFlight.clear();
+        _unanswered = 0;
+        notifyAll();
+    }
+
+    /**
+     * Stop the dispatching thread, queued requests are dropped
+     */
+    public void stop() {
+        _running = false;
+        _dispatcher.interrupt();
+    }
+
+    public synchronized int getLimit() {
+        return (int) _limit;
+    }
+
+    public synchronized double getRate() {
+        return _rate;
+    }
+
+    public synchronized int getQueueSize() {
+        return _queue.size();
+    }
+
+    public synchronized int getInFlight() {
+        return _inFlight.size();
+    }
+
+    /**
+     * @return Number of requests dropped because their deadline expired before they could be sent
+     */
+    public synchronized long getExpiredCount() {
+        return _expired;
+    }
+
+    /**
+     * @return Number of reads merged into a newer read of the same resource before being sent
+     */
+    public synchronized long getSupersededCount() {
+        return _superseded;
+    }
+
+    private void decrease(long now, double factor) {
+        // Only back off once per round trip, the other failures of the same window are caused by the same congestion
+        if (now - _lastDecrease < Math.max(_smoothedRtt, 1)) {
+            return;
+        }
+        _lastDecrease = now;
+        _limit = Math.max(MIN_LIMIT, _limit * factor);
+        _rate = Math.max(MIN_RATE, _rate * factor);
+        if (factor == BACKOFF) {
+            System.err.println("Limiter[" + _channel.getUrl() + "] backing off: limit=" + (int) _limit + ", rate=" + (int) _rate + "/s");
+        }
+    }
+
+    private void dispatch() {
+        try {
+            while (_running) {
+                Pending next;
+                long sent;
+                synchronized (this) {
+                    long now = System.currentTimeMillis();
+                    expire(now);
+                    _tokens = Math.min(Math.max(1, _rate), _tokens + (now - _lastRefill) * _rate / 1000);
+                    _lastRefill = now;
+                    if (_queue.isEmpty() || _inFlight.size() >= (int) _limit || !_channel.isConnected()) {
+                        wait(IDLE_WAIT);
+                        continue;
+                    }
+                    if (_tokens < 1) {
+                        wait(Math.max(1, (long) ((1 - _tokens) * 1000 / _rate)));
+                        continue;
+                    }
+                    next = _queue.poll();
+                    if (next.priority != PRIORITY_WRITE) {
+                        _queuedReads.remove(next.key);
+                    }
+                    if (now > next.deadline) {
+                        _expired++;
+                        continue;
+                    }
+                    _tokens -= 1;
+                    _inFlight.addLast(now);
+                    _lastDispatch.put(next.key, now);
+                    sent = now;
+                }
+                // The websocket closed since the check or the write failed, the request never left
+                if (!_channel.send(next.message, () -> unsent(next, sent))) {
+                    unsent(next, sent);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private synchronized void unsent(Pending pending, long sent) {
+        _inFlight.removeLastOccurrence(sent);
+        requeue(pending);
+        notifyAll();
+    }
+
+    private void requeue(Pending pending) {
+        if (pending.priority == PRIORITY_WRITE) {
+            _queue.add(pending);
+        } else if (_queuedReads.containsKey(pending.key)) {
+            _superseded++;
+        } else {
+            _queuedReads.put(pending.key, pending);
+            _queue.add(pending);
+        }
+    }
+
+    private void expire(long now) {
+        boolean expired = false;
+        while (!_inFlight.isEmpty() && now - _inFlight.peekFirst() > _timeout) {
+            _inFlight.pollFirst();
+            _unanswered++;
+            expired = true;
+        }
+        if (expired) {
+            _lastTimeout = now;
+            decrease(now, BACKOFF);
+        }
+    }
+
+    private static class Pending implements Comparable<Pending> {
+        private final String key;
+        private final long seq;
+        private String message;
+        private int priority;
+        private long deadline;
+
+        Pending(String key, String message, int priority, long seq, long deadline) {
+            this.key = key;
+            this.message = message;
+            this.priority = priority;
+            this.seq = seq;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Pending o) {
+            if (priority != o.priority) {
+                return Integer.compare(priority, o.priority);
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
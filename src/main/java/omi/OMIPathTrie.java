@@ -0,0 +1,185 @@
+/**
+ * Copyright 2017 The GreyCat Authors.  All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package omi;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Trie of the O-DF paths of the resources registered on a server.
+ * Each level is an Object id, the leaves map InfoItem names to greycat node ids.
+ * Path segments are interned so that the resources sharing a prefix share the same strings.
+ */
+public class OMIPathTrie {
+
+    /**
+     * Returned by route when no resource is registered for a path
+     */
+    public static final long NOT_FOUND = -1;
+
+    private static final String NO_INFOITEM = "";
+
+    private final Node _root = new Node(null);
+    private final ConcurrentHashMap<String, String[]> _segments = new ConcurrentHashMap<>();
+    private final HashMap<String, Integer> _references = new HashMap<>();
+
+    /**
+     * Get the segments of a registered path, split once when the path was registered
+     *
+     * @param path Path of the Object (eg. K1/101/co2)
+     * @return A copy of the ordered list of ids, null if no resource is registered with this path
+     */
+    public String[] segments(String path) {
+        String[] ids = _segments.get(path);
+        return ids == null ? null : ids.clone();
+    }
+
+    /**
+     * Register a resource, unless a resource is already registered with the same path and InfoItem
+     *
+     * @param path      Path of the Object
+     * @param infoItem  InfoItem name
+     * @param greycatId Greycat id of the resource
+     * @return False if the path and InfoItem are already registered
+     */
+    public synchronized boolean put(String path, String infoItem, long greycatId) {
+        String[] ids = _segments.get(path);
+        if (ids == null) {
+            ids = path.split("/");
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = ids[i].intern();
+            }
+        }
+        Node current = _root;
+        for (String id : ids) {
+            Node child = current._children.get(id);
+            if (child == null) {
+                child = new Node(id);
+                current._children.put(id, child);
+            }
+            current = child;
+        }
+        String name = infoItem == null ? NO_INFOITEM : infoItem.intern();
+        if (current._infoItems.containsKey(name)) {
+            return false;
+        }
+        current._infoItems.put(name, greycatId);
+        _segments.put(path, ids);
+        _references.merge(path, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Unregister a resource, the branches left empty are pruned
+     *
+     * @param path     Path of the Object
+     * @param infoItem InfoItem name
+     * @return True if the resource was registered
+     */
+    public synchronized boolean remove(String path, String infoItem) {
+        String[] ids = _segments.get(path);
+        if (ids == null || !remove(_root, ids, 0, infoItem == null ? NO_INFOITEM : infoItem)) {
+            return false;
+        }
+        if (_references.merge(path, -1, Integer::sum) == 0) {
+            _references.remove(path);
+            _segments.remove(path);
+        }
+        return true;
+    }
+
+    private boolean remove(Node node, String[] ids, int depth, String infoItem) {
+        if (depth == ids.length) {
+            return node._infoItems.remove(infoItem) != null;
+        }
+        Node child = node._children.get(ids[depth]);
+        if (child == null || !remove(child, ids, depth + 1, infoItem)) {
+            return false;
+        }
+        if (child._children.isEmpty() && child._infoItems.isEmpty()) {
+            node._children.remove(ids[depth]);
+        }
+        return true;
+    }
+
+    /**
+     * Find the greycat node registered for a path and an InfoItem in O(depth)
+     *
+     * @param ids      Ordered list of Object ids
+     * @param infoItem InfoItem name
+     * @return Greycat id of the resource, NOT_FOUND otherwise
+     */
+    public long route(String[] ids, String infoItem) {
+        Node current = _root;
+        for (int i = 0; i < ids.length && current != null; i++) {
+            current = current.child(ids[i]);
+        }
+        return current == null ? NOT_FOUND : current.infoItem(infoItem);
+    }
+
+    /**
+     * Root of the trie, to be walked alongside the parsed Objects
+     *
+     * @return Root node (without id)
+     */
+    public Node root() {
+        return _root;
+    }
+
+    /**
+     * Level of the trie, matching an O-DF Object
+     */
+    public static class Node {
+
+        private final String _id;
+        private final ConcurrentHashMap<String, Node> _children = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Long> _infoItems = new ConcurrentHashMap<>();
+
+        private Node(String id) {
+            _id = id;
+        }
+
+        public String id() {
+            return _id;
+        }
+
+        /**
+         * @param id Object id
+         * @return Sub-object, null if not registered
+         */
+        public Node child(String id) {
+            return _children.get(id);
+        }
+
+        public Collection<Node> children() {
+            return _children.values();
+        }
+
+        /**
+         * @param name InfoItem name
+         * @return Greycat id of the resource, NOT_FOUND if not registered
+         */
+        public long infoItem(String name) {
+            Long greycatId = _infoItems.get(name == null ? NO_INFOITEM : name);
+            return greycatId == null ? NOT_FOUND : greycatId;
+        }
+
+        public Collection<String> infoItems() {
+            return _infoItems.keySet();
+        }
+    }
+}
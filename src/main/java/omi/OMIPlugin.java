@@ -36,6 +36,8 @@ public class OMIPlugin implements Plugin {
     private boolean _liveUpdate;
     private HashMap<String, OMIScheduler> _schedulers = new HashMap<>();
     private ODFHandler _responseHandler;
+    private int _sslSessionCacheSize = OMIConnector.DEFAULT_SSL_SESSION_CACHE_SIZE;
+    private int _sslSessionTimeout = OMIConnector.DEFAULT_SSL_SESSION_TIMEOUT;
 
     /**
      * Build the OMI plugin
@@ -54,6 +56,19 @@ public class OMIPlugin implements Plugin {
         this(gatewayId, odfHandler, true);
     }
 
+    /**
+     * Configure the TLS session cache of the websockets, used to resume sessions on reconnection
+     *
+     * @param size    Number of cached TLS sessions, 0 disables the session resumption
+     * @param timeout Validity (s) of a cached TLS session
+     * @return The plugin
+     */
+    public OMIPlugin withSslSessionCache(int size, int timeout) {
+        _sslSessionCacheSize = size;
+        _sslSessionTimeout = timeout;
+        return this;
+    }
+
     /**
      * Start the OMI plugin
      *
@@ -76,7 +91,7 @@ public class OMIPlugin implements Plugin {
                                         String url = ctx.resultAsNodes().get(0).get("url").toString();
                                         ctx.defineVariable("urlRoot", url);
                                         if (_liveUpdate) {
-                                            _schedulers.put(url, new OMIScheduler(graph, url, _responseHandler));
+                                            _schedulers.put(url, new OMIScheduler(graph, url, _responseHandler, _sslSessionCacheSize, _sslSessionTimeout));
                                             ctx.continueTask();
                                         } else {
                                             System.err.println("[OMI] Live update is deactivated");
@@ -0,0 +1,335 @@
+/**
+ * Copyright 2017 The GreyCat Authors.  All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package omi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Binary log of the websocket frames sent and received by a connector.
+ * The log is gzipped and starts with the url of the server, the definitions of its resources and the recording time,
+ * then each frame is stored as its direction, the delay since the previous frame and its UTF-8 content,
+ * the integers being written as variable-length values.
+ * The log is flushed at least every second, so a gateway killed without closing the recorder only loses the last frames.
+ */
+public class OMIRecorder {
+
+    public static final byte SENT = 0;
+    public static final byte RECEIVED = 1;
+
+    private static final int MAGIC = 0x4F4D4952; // OMIR
+    private static final int VERSION = 2;
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private final DataOutputStream _out;
+    private long _last;
+    private long _lastFlush;
+    private boolean _closed = false;
+
+    /**
+     * Open a log file, overwriting it if it exists
+     *
+     * @param path Path of the log file
+     * @param url       Url of the recorded server
+     * @param resources Resources registered on the server, recreated by the replay
+     * @throws IOException if the file cannot be created
+     */
+    public OMIRecorder(String path, String url, Collection<Resource> resources) throws IOException {
+        // Sync flush, so that a flush makes the pending frames readable without the gzip trailer
+        _out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(path), true)));
+        _out.writeInt(MAGIC);
+        _out.writeByte(VERSION);
+        _out.writeUTF(url);
+        writeVarLong(_out, resources.size());
+        for (Resource resource : resources) {
+            resource.write(_out);
+        }
+        _last = System.currentTimeMillis();
+        _out.writeLong(_last);
+        _out.flush();
+        _lastFlush = _last;
+    }
+
+    /**
+     * Append a frame to the log
+     *
+     * @param direction SENT or RECEIVED
+     * @param message   Content of the frame
+     */
+    public synchronized void record(byte direction, String message) {
+        if (_closed) {
+            // Raced with stopRecording
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            byte[] content = message.getBytes(StandardCharsets.UTF_8);
+            _out.writeByte(direction);
+            writeVarLong(_out, now - _last);
+            writeVarLong(_out, content.length);
+            _out.write(content);
+            _last = now;
+            if (now - _lastFlush >= FLUSH_INTERVAL) {
+                _out.flush();
+                _lastFlush = now;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the pending frames to the log file
+     */
+    public synchronized void flush() {
+        if (_closed) {
+            return;
+        }
+        try {
+            _out.flush();
+            _lastFlush = System.currentTimeMillis();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Flush and close the log
+     */
+    public synchronized void close() {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        try {
+            _out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Sequential reader of a log written by the recorder
+     */
+    public static class Reader {
+
+        private final DataInputStream _in;
+        private final String _url;
+        private final List<Resource> _resources = new ArrayList<>();
+        private long _time;
+        private byte _direction;
+        private String _message;
+
+        /**
+         * Open a log file
+         *
+         * @param path Path of the log file
+         * @throws IOException if the file cannot be read or is not a recorder log
+         */
+        public Reader(String path) throws IOException {
+            _in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(path))));
+            if (_in.readInt() != MAGIC || _in.readByte() != VERSION) {
+                _in.close();
+                throw new IOException("Not an O-MI recorder log: " + path);
+            }
+            _url = _in.readUTF();
+            long count = readVarLong(_in);
+            for (long i = 0; i < count; i++) {
+                _resources.add(Resource.read(_in));
+            }
+            _time = _in.readLong();
+        }
+
+        /**
+         * @return Resources registered on the server when the recording started
+         */
+        public List<Resource> resources() {
+            return _resources;
+        }
+
+        /**
+         * @return Url of the recorded server
+         */
+        public String url() {
+            return _url;
+        }
+
+        /**
+         * Move to the next frame
+         *
+         * @return False when the end of the log is reached
+         * @throws IOException if the log is corrupted
+         */
+        public boolean next() throws IOException {
+            // The inflater reports a log cut in its middle, eg. by a killed gateway, on any read
+            try {
+                int direction = _in.read();
+                if (direction == -1) {
+                    return false;
+                }
+                _direction = (byte) direction;
+                _time += readVarLong(_in);
+                byte[] content = new byte[(int) readVarLong(_in)];
+                _in.readFully(content);
+                _message = new String(content, StandardCharsets.UTF_8);
+                return true;
+            } catch (EOFException e) {
+                // Truncated log, the frames read so far are kept
+                return false;
+            }
+        }
+
+        /**
+         * @return Timestamp (ms) of the current frame
+         */
+        public long time() {
+            return _time;
+        }
+
+        /**
+         * @return SENT or RECEIVED
+         */
+        public byte direction() {
+            return _direction;
+        }
+
+        public String message() {
+            return _message;
+        }
+
+        public void close() throws IOException {
+            _in.close();
+        }
+    }
+
+    /**
+     * Definition of a resource node, as registered on a scheduler
+     */
+    public static class Resource {
+
+        private final String _id;
+        private final String _path;
+        private final String _action;
+        private final String _infoItem;
+        private final long _period;
+        private final String _mode;
+        private final String _storage;
+
+        /**
+         * @param id       'id' attribute
+         * @param path     'path' attribute
+         * @param action   'action' attribute
+         * @param infoItem 'infoitem' attribute, may be null
+         * @param period   'period' attribute, 0 for writes
+         * @param mode     'mode' attribute, may be null
+         * @param storage  'storage' attribute, may be null
+         */
+        public Resource(String id, String path, String action, String infoItem, long period, String mode, String storage) {
+            _id = id;
+            _path = path;
+            _action = action;
+            _infoItem = infoItem;
+            _period = period;
+            _mode = mode;
+            _storage = storage;
+        }
+
+        public String id() {
+            return _id;
+        }
+
+        public String path() {
+            return _path;
+        }
+
+        public String action() {
+            return _action;
+        }
+
+        public String infoItem() {
+            return _infoItem;
+        }
+
+        public long period() {
+            return _period;
+        }
+
+        public String mode() {
+            return _mode;
+        }
+
+        public String storage() {
+            return _storage;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(_id);
+            out.writeUTF(_path);
+            out.writeUTF(_action);
+            writeNullable(out, _infoItem);
+            out.writeLong(_period);
+            writeNullable(out, _mode);
+            writeNullable(out, _storage);
+        }
+
+        private static Resource read(DataInputStream in) throws IOException {
+            return new Resource(in.readUTF(), in.readUTF(), in.readUTF(), readNullable(in), in.readLong(), readNullable(in), readNullable(in));
+        }
+
+        private static void writeNullable(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readNullable(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+}
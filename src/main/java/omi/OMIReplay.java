@@ -0,0 +1,265 @@
+/**
+ * Copyright 2017 The GreyCat Authors.  All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package omi;
+
+import greycat.Constants;
+import greycat.Graph;
+import greycat.GraphBuilder;
+import greycat.Task;
+import greycat.Type;
+import greycat.leveldb.LevelDBStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static greycat.Tasks.newTask;
+
+/**
+ * Replay of a log written by OMIRecorder.
+ * The resources recorded in the log are recreated in a fresh LevelDB graph and registered in a path trie,
+ * then the received frames are handled as OMIConnector.onMessage does, hence parsed by the ODF handler and ingested
+ * into the graph, either at the recorded pace or as fast as possible.
+ * Usage: OMIReplay log_file db_path handler_class [paced]
+ */
+public class OMIReplay {
+
+    private static final Object THREADS;
+    private static final Method ALLOCATED_BYTES;
+
+    static {
+        // Not part of the compact1 profile, hence reached by reflection when the JVM provides it
+        Object threads = null;
+        Method allocatedBytes = null;
+        try {
+            threads = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            allocatedBytes = null;
+        }
+        THREADS = threads;
+        ALLOCATED_BYTES = allocatedBytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: OMIReplay log_file db_path handler_class [paced]");
+            return;
+        }
+        ODFHandler handler = (ODFHandler) Class.forName(args[2]).getDeclaredConstructor().newInstance();
+        boolean paced = args.length > 3 && Boolean.parseBoolean(args[3]);
+        System.out.println(replay(args[0], args[1], handler, paced));
+    }
+
+    /**
+     * Replay a recorded log
+     *
+     * @param logPath Path of the log file
+     * @param dbPath  Path of the LevelDB storage, must not exist
+     * @param handler ODF handler parsing and ingesting the received frames
+     * @param paced   True to respect the recorded delays between frames, false to replay as fast as possible
+     * @return Measures of the replay
+     * @throws IOException if the log cannot be read or the storage already exists
+     */
+    public static Report replay(String logPath, String dbPath, ODFHandler handler, boolean paced) throws IOException {
+        if (new File(dbPath).exists()) {
+            throw new IOException("The replay needs a fresh storage, " + dbPath + " already exists");
+        }
+        OMIRecorder.Reader reader = new OMIRecorder.Reader(logPath);
+        Graph graph = new GraphBuilder()
+                .withStorage(new LevelDBStorage(dbPath))
+                .withPlugin(new OMIPlugin("replay", handler, false))
+                .build();
+        CountDownLatch connected = new CountDownLatch(1);
+        graph.connect(result -> connected.countDown());
+        await(connected);
+
+        OMIPathTrie trie = new OMIPathTrie();
+        seed(graph, reader.url(), reader.resources(), trie);
+        handler.setPathTrie(reader.url(), trie);
+
+        long[] latencies = new long[1024];
+        int received = 0;
+        int sent = 0;
+        long bytes = 0;
+        long firstFrame = -1;
+        long allocatedBefore = allocatedBytes();
+        long begin = System.nanoTime();
+        try {
+            while (reader.next()) {
+                if (paced) {
+                    if (firstFrame == -1) {
+                        firstFrame = reader.time();
+                    }
+                    long wait = (reader.time() - firstFrame) - (System.nanoTime() - begin) / 1000000;
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+                if (reader.direction() == OMIRecorder.SENT) {
+                    sent++;
+                    continue;
+                }
+                String message = reader.message();
+                long start = System.nanoTime();
+                OMIConnector.handle(message, OMIConnector.returnCode(message), handler, reader.url());
+                if (received == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, received * 2);
+                }
+                latencies[received++] = System.nanoTime() - start;
+                bytes += message.length();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            reader.close();
+        }
+        long duration = System.nanoTime() - begin;
+        long allocatedAfter = allocatedBytes();
+
+        CountDownLatch disconnected = new CountDownLatch(1);
+        graph.disconnect(result -> disconnected.countDown());
+        await(disconnected);
+
+        Arrays.sort(latencies, 0, received);
+        return new Report(sent, received, bytes, duration, Arrays.copyOf(latencies, received),
+                allocatedBefore == -1 || allocatedAfter == -1 ? -1 : allocatedAfter - allocatedBefore);
+    }
+
+    /**
+     * Recreate the root node of the server and its resources, as the plugin expects them
+     */
+    private static void seed(Graph graph, String url, List<OMIRecorder.Resource> resources, OMIPathTrie trie) throws IOException {
+        CountDownLatch root = new CountDownLatch(1);
+        newTask()
+                .travelInTime(Constants.BEGINNING_OF_TIME_STR)
+                .createNode().setAttribute("url", Type.STRING, url).declareLocalIndex("resources", "id")
+                .setAsVar("root")
+                .readIndex("gateway", "omi").addVarTo("root", "root")
+                .execute(graph, result -> root.countDown());
+        await(root);
+
+        for (OMIRecorder.Resource resource : resources) {
+            Task create = newTask()
+                    .travelInTime(Constants.BEGINNING_OF_TIME_STR)
+                    .createNode()
+                    .setAttribute("id", Type.STRING, resource.id())
+                    .setAttribute(OMIConstants.PATH, Type.STRING, resource.path())
+                    .setAttribute(OMIConstants.ACTION, Type.STRING, resource.action())
+                    .setAttribute("period", Type.LONG, String.valueOf(resource.period()));
+            if (resource.infoItem() != null) {
+                create.setAttribute(OMIConstants.INFOITEM, Type.STRING, resource.infoItem());
+            }
+            if (resource.mode() != null) {
+                create.setAttribute(OMIConstants.MODE, Type.STRING, resource.mode());
+            }
+            if (resource.storage() != null) {
+                create.setAttribute(OMIConstants.STORAGE, Type.STRING, resource.storage());
+            }
+            CountDownLatch created = new CountDownLatch(1);
+            create.setAsVar("resource")
+                    .thenDo(ctx -> {
+                        // Routed as the scheduler does: reads only, the first registered wins
+                        if (OMIConstants.READ.equals(resource.action())
+                                && !trie.put(resource.path(), resource.infoItem(), ctx.resultAsNodes().get(0).id())) {
+                            System.err.println("Replay: " + resource.id() + " not routed, " + resource.path() + " (" + resource.infoItem() + ") is already routed to another resource");
+                        }
+                        ctx.continueTask();
+                    })
+                    .readIndex("gateway", "omi").traverse("root", url).addVarTo("resources", "resource")
+                    .execute(graph, result -> created.countDown());
+            await(created);
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for the graph", e);
+        }
+    }
+
+    private static long allocatedBytes() {
+        if (ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            return (long) ALLOCATED_BYTES.invoke(THREADS, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Measures of a replay, latencies being the time spent handling a received frame
+     */
+    public static class Report {
+
+        private final int _sent;
+        private final int _received;
+        private final long _bytes;
+        private final long _duration;
+        private final long[] _latencies;
+        private final long _allocated;
+
+        Report(int sent, int received, long bytes, long duration, long[] latencies, long allocated) {
+            _sent = sent;
+            _received = received;
+            _bytes = bytes;
+            _duration = duration;
+            _latencies = latencies;
+            _allocated = allocated;
+        }
+
+        /**
+         * @return Received frames replayed per second
+         */
+        public double throughput() {
+            return _duration == 0 ? 0 : _received * 1e9 / _duration;
+        }
+
+        /**
+         * @param percentile Percentile between 0 and 100
+         * @return Latency (ns) of the percentile, -1 if no frame was received
+         */
+        public long latency(double percentile) {
+            if (_latencies.length == 0) {
+                return -1;
+            }
+            int index = (int) Math.ceil(percentile / 100 * _latencies.length) - 1;
+            return _latencies[Math.max(0, Math.min(index, _latencies.length - 1))];
+        }
+
+        /**
+         * @return Bytes allocated per second by the replaying thread, -1 if the JVM does not provide it
+         */
+        public double allocationRate() {
+            return _allocated == -1 || _duration == 0 ? -1 : _allocated * 1e9 / _duration;
+        }
+
+        @Override
+        public String toString() {
+            return "Replayed " + _received + " received frames (" + _sent + " sent frames skipped, " + _bytes + " chars) in " + _duration / 1000000 + "ms\n" +
+                    "Throughput: " + String.format("%.1f", throughput()) + " frames/s\n" +
+                    "Latency (us): p50=" + latency(50) / 1000 + " p90=" + latency(90) / 1000 + " p99=" + latency(99) / 1000 + " max=" + latency(100) / 1000 + "\n" +
+                    "Allocation rate: " + (_allocated == -1 ? "n/a" : String.format("%.1f", allocationRate() / (1024 * 1024)) + " MB/s");
+        }
+    }
+}
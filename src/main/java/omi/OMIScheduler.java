@@ -17,10 +17,15 @@ package omi;
 
 import greycat.Constants;
 import greycat.Graph;
+import greycat.Node;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static greycat.Tasks.newTask;
 import static omi.OMIConstants.TS_LAST_VALUE_RECEIVED;
@@ -32,8 +37,12 @@ public class OMIScheduler {
 
     private ExecutorService _scheduler = Executors.newCachedThreadPool();
     private OMIConnector _connector;
+    private OMILimiter _limiter;
     private String _server;
     private Graph _graph;
+    private OMIPathTrie _trie = new OMIPathTrie();
+    private ConcurrentHashMap<Long, Runnable> _removers = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<Long, OMIRecorder.Resource> _resources = new ConcurrentHashMap<>();
 
     /**
      * Default constructor
@@ -42,9 +51,23 @@ public class OMIScheduler {
      * @param responseHandler Response handler
      */
     public OMIScheduler(Graph graph, String server, ODFHandler responseHandler) {
+        this(graph, server, responseHandler, OMIConnector.DEFAULT_SSL_SESSION_CACHE_SIZE, OMIConnector.DEFAULT_SSL_SESSION_TIMEOUT);
+    }
+
+    /**
+     * Build a scheduler with a custom TLS session cache
+     *
+     * @param server              OMI server URL (eg. wss://remote_server/)
+     * @param responseHandler     Response handler
+     * @param sslSessionCacheSize Number of cached TLS sessions, 0 disables the session resumption
+     * @param sslSessionTimeout   Validity (s) of a cached TLS session
+     */
+    public OMIScheduler(Graph graph, String server, ODFHandler responseHandler, int sslSessionCacheSize, int sslSessionTimeout) {
         _graph = graph;
         _server = server;
-        _connector = new OMIConnector(server, 100000, 60 * 60 * 1000L, responseHandler);
+        _connector = new OMIConnector(server, 100000, 60 * 60 * 1000L, responseHandler, sslSessionCacheSize, sslSessionTimeout);
+        _limiter = _connector.getLimiter();
+        responseHandler.setPathTrie(server, _trie);
     }
 
     /**
@@ -61,26 +84,100 @@ public class OMIScheduler {
             String infoItem = (String) ctx.resultAsNodes().get(0).get(OMIConstants.INFOITEM);
             switch (action) {
                 case OMIConstants.READ:
+                    boolean routed = route(id, path, infoItem, greycatId);
                     long period = (long) ctx.resultAsNodes().get(0).get("period");
+                    _resources.put(greycatId, describe(ctx.resultAsNodes().get(0), id, path, action, infoItem, period));
                     System.out.println("Scheduler[" + _server + "]+= " + id + "(Period: " + period + "ms)");
-                    _scheduler.execute(buildThread(id, period, path, greycatId, infoItem));
+                    Future<?> reader = _scheduler.submit(buildThread(id, period, path, greycatId, infoItem));
+                    _removers.put(greycatId, () -> {
+                        reader.cancel(true);
+                        if (routed) {
+                            _trie.remove(path, infoItem);
+                        }
+                        _limiter.forget(id);
+                        OMITimeSeries.forget(_graph, greycatId);
+                    });
                     break;
                 case OMIConstants.WRITE:
+                    // Write responses carry no sample, hence a listener is not routed
                     System.out.println("Listener[" + _server + "]+=" + id);
-                    ctx.resultAsNodes().get(0).listen(changeTimes -> {
+                    _resources.put(greycatId, describe(ctx.resultAsNodes().get(0), id, path, action, infoItem, 0));
+                    long listenerId = ctx.resultAsNodes().get(0).listen(changeTimes -> {
                         newTask().lookup(String.valueOf(greycatId)).travelInTime(String.valueOf(changeTimes[0])).thenDo(ctx1 -> {
                             Object value = ctx1.resultAsNodes().get(0).get("value");
                             String message = _connector.getHandler().writeMessage(path, value, infoItem);
-                            _connector.send(message);
+                            _limiter.submit(id, message, OMILimiter.PRIORITY_WRITE);
+                            ctx1.continueTask();
+                        }).execute(_graph, null);
+                    });
+                    _removers.put(greycatId, () -> {
+                        newTask().lookup(String.valueOf(greycatId)).thenDo(ctx1 -> {
+                            ctx1.resultAsNodes().get(0).unlisten(listenerId);
                             ctx1.continueTask();
                         }).execute(_graph, null);
+                        _limiter.forget(id);
                     });
                     break;
+                default:
+                    System.err.println("Scheduler[" + _server + "] " + id + " ignored, unknown action: " + action);
             }
             ctx.continueTask();
         }).execute(_graph, null);
     }
 
+    private boolean route(String id, String path, String infoItem, long greycatId) {
+        if (_trie.put(path, infoItem, greycatId)) {
+            return true;
+        }
+        // Still polled, the samples of the path go to the resource registered first
+        System.err.println("Scheduler[" + _server + "] " + id + " not routed, " + path + " (" + infoItem + ") is already routed to another resource");
+        return false;
+    }
+
+    /**
+     * Remove a greycat node from the scheduler, its polling or listening is stopped
+     *
+     * @param greycatId Greycat id
+     */
+    public void remove(long greycatId) {
+        Runnable remover = _removers.remove(greycatId);
+        _resources.remove(greycatId);
+        if (remover != null) {
+            System.out.println("Scheduler[" + _server + "]-= " + greycatId);
+            remover.run();
+        }
+    }
+
+    /**
+     * Start recording the traffic with the server, along with the resources currently registered
+     *
+     * @param path Path of the log file, overwritten if it exists
+     * @throws IOException if the log file cannot be created
+     */
+    public void startRecording(String path) throws IOException {
+        _connector.startRecording(path, new ArrayList<>(_resources.values()));
+    }
+
+    /**
+     * Stop recording the traffic with the server
+     */
+    public void stopRecording() {
+        _connector.stopRecording();
+    }
+
+    private OMIRecorder.Resource describe(Node node, String id, String path, String action, String infoItem, long period) {
+        return new OMIRecorder.Resource(id, path, action, infoItem, period, (String) node.get(OMIConstants.MODE), (String) node.get(OMIConstants.STORAGE));
+    }
+
+    /**
+     * Get the trie of the resources registered on the scheduler
+     *
+     * @return A path trie
+     */
+    public OMIPathTrie getPathTrie() {
+        return _trie;
+    }
+
     /**
      * Get the websocket connector instanciated for the scheduler
      *
@@ -94,6 +191,12 @@ public class OMIScheduler {
         return () -> {
             try {
                 while (true) {
+                    // A read is overdue when the previous poll of the resource did not leave the queue for a whole period
+                    long lastDispatch = _limiter.lastDispatch(id);
+                    int priority = lastDispatch != 0 && System.currentTimeMillis() - lastDispatch > 2 * period ? OMILimiter.PRIORITY_OVERDUE_READ : OMILimiter.PRIORITY_READ;
+                    // The next tick supersedes this poll, so it is useless past one period, for the server as well
+                    long deadline = System.currentTimeMillis() + period;
+                    int ttl = (int) Math.max(1, (period + 999) / 1000);
                     newTask()
                             .travelInTime(Constants.BEGINNING_OF_TIME_STR)
                             .lookup(String.valueOf(greycatId))
@@ -101,36 +204,41 @@ public class OMIScheduler {
                             .attribute(OMIConstants.MODE)
                             .setAsVar("mode")
                             .ifThenElse(cond -> cond.variable("mode").get(0).equals(OMIConstants.NEWEST_UNTIL_NOW),
-                                    newTask().readVar("node").traverse("raw")
-                                            .timepoints("0", String.valueOf(System.currentTimeMillis()))
-                                            .thenDo(ctx -> {
-                                                        if (ctx.result().size() > 0) {
-                                                            ctx.setVariable(TS_LAST_VALUE_RECEIVED, ctx.result().get(ctx.result().size() - 1));
-                                                        } else {
-                                                            ctx.setVariable(TS_LAST_VALUE_RECEIVED, 0L);
-                                                        }
-                                                        ctx.continueTask();
-                                                    }
-                                            )
+                                    newTask().ifThenElse(cond -> OMIConstants.STORAGE_COMPACT.equals(((Node) cond.variable("node").get(0)).get(OMIConstants.STORAGE)),
+                                            newTask().thenDo(ctx -> OMITimeSeries.last(_graph, greycatId, last -> {
+                                                ctx.setVariable(TS_LAST_VALUE_RECEIVED, last);
+                                                ctx.continueTask();
+                                            })),
+                                            newTask().readVar("node").traverse("raw")
+                                                    .timepoints("0", String.valueOf(System.currentTimeMillis()))
+                                                    .thenDo(ctx -> {
+                                                                if (ctx.result().size() > 0) {
+                                                                    ctx.setVariable(TS_LAST_VALUE_RECEIVED, ctx.result().get(ctx.result().size() - 1));
+                                                                } else {
+                                                                    ctx.setVariable(TS_LAST_VALUE_RECEIVED, 0L);
+                                                                }
+                                                                ctx.continueTask();
+                                                            }
+                                                    ))
                                             .readVar("node").thenDo(ctx -> {
                                         long lastUpdate = (long) ctx.variable(TS_LAST_VALUE_RECEIVED).get(0);
                                         ctx.setVariable("now", System.currentTimeMillis());
                                         String begin = _connector.getHandler().parseDate(new Date(lastUpdate), _connector.getHandler().getDateFormat());
                                         String end = _connector.getHandler().parseDate(new Date((Long) ctx.variable("now").get(0)), _connector.getHandler().getDateFormat());
-                                        String request = _connector.getHandler().readMessage(path, begin, end, infoItem);
-                                        _connector.send(request);
+                                        String request = _connector.getHandler().readMessage(path, begin, end, infoItem, ttl);
+                                        _limiter.submit(id, request, priority, deadline);
                                         ctx.continueTask();
                                     }),
                                     newTask().ifThenElse(cond -> cond.variable("mode").get(0).equals(OMIConstants.NEWEST),
                                             newTask().thenDo(ctx -> {
-                                                String request = _connector.getHandler().readAmountMessage(path, 50, OMIConstants.NEWEST, infoItem);
-                                                _connector.send(request);
+                                                String request = _connector.getHandler().readAmountMessage(path, 50, OMIConstants.NEWEST, infoItem, ttl);
+                                                _limiter.submit(id, request, priority, deadline);
                                                 ctx.continueTask();
                                             }),
                                             newTask().ifThenElse(cond -> cond.variable("mode").get(0).equals(OMIConstants.OLDEST),
                                                     newTask().thenDo(ctx -> {
-                                                        String request = _connector.getHandler().readAmountMessage(path, 50, OMIConstants.OLDEST, infoItem);
-                                                        _connector.send(request);
+                                                        String request = _connector.getHandler().readAmountMessage(path, 50, OMIConstants.OLDEST, infoItem, ttl);
+                                                        _limiter.submit(id, request, priority, deadline);
                                                         ctx.continueTask();
                                                     }),
                                                     newTask().thenDo(ctx -> {
@@ -142,7 +250,7 @@ public class OMIScheduler {
                     Thread.sleep(period);
                 }
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                // Removed from the scheduler
             }
         };
     }
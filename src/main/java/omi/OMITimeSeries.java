@@ -0,0 +1,311 @@
+/**
+ * Copyright 2017 The GreyCat Authors.  All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package omi;
+
+import greycat.Callback;
+import greycat.Constants;
+import greycat.Graph;
+import greycat.Node;
+import greycat.Type;
+import greycat.struct.DoubleArray;
+import greycat.struct.LongArray;
+import greycat.struct.Relation;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact storage of the values ingested for a resource.
+ * Instead of one timepoint per sample, the samples are packed into chunks covering a fixed time bucket,
+ * each chunk being a node holding sorted arrays of timestamps and values.
+ * The chunks are linked to the resource through the 'chunks' relation, so the graph stays navigable.
+ * Resources using this mode must have their 'storage' attribute set to 'compact'.
+ * The appends of a resource are serialized, so concurrent appends falling in a new bucket create a single chunk.
+ */
+public class OMITimeSeries {
+
+    // Per graph, node ids being only unique within a graph, and released with the graph
+    private static final Map<Graph, ConcurrentHashMap<Long, Object>> LOCKS = new WeakHashMap<>();
+
+    /**
+     * Default time bucket of a chunk (ms), 3600 samples for a 1Hz sensor
+     */
+    public static final long DEFAULT_CHUNK_SIZE = 60 * 60 * 1000L;
+
+    /**
+     * Append a sample to the chunks of a resource, using the default chunk size
+     *
+     * @param graph      Greycat graph
+     * @param resourceId Greycat id of the resource
+     * @param time       Timestamp of the sample
+     * @param value      Value of the sample
+     * @param callback   Called once the sample is stored
+     */
+    public static void append(Graph graph, long resourceId, long time, double value, Callback<Boolean> callback) {
+        append(graph, resourceId, time, value, DEFAULT_CHUNK_SIZE, callback);
+    }
+
+    /**
+     * Append a sample to the chunks of a resource
+     *
+     * @param graph      Greycat graph
+     * @param resourceId Greycat id of the resource
+     * @param time       Timestamp of the sample
+     * @param value      Value of the sample
+     * @param chunkSize  Time bucket of a chunk (ms), only used by the first append of the resource
+     * @param callback   Called once the sample is stored
+     */
+    public static void append(Graph graph, long resourceId, long time, double value, long chunkSize, Callback<Boolean> callback) {
+        graph.lookup(0, Constants.BEGINNING_OF_TIME, resourceId, (Node resource) -> {
+            if (resource == null) {
+                callback.on(false);
+                return;
+            }
+            Object lock = lock(graph, resourceId);
+            long chunkId;
+            // The search and the creation of a missing chunk must be atomic, the callbacks may run concurrently
+            synchronized (lock) {
+                Object stored = resource.get(OMIConstants.CHUNK_SIZE);
+                long size = stored == null ? chunkSize : (long) stored;
+                if (stored == null) {
+                    resource.set(OMIConstants.CHUNK_SIZE, Type.LONG, size);
+                }
+                long start = time - Math.floorMod(time, size);
+                LongArray starts = (LongArray) resource.getOrCreate(OMIConstants.CHUNK_STARTS, Type.LONG_ARRAY);
+                LongArray ids = (LongArray) resource.getOrCreate(OMIConstants.CHUNK_IDS, Type.LONG_ARRAY);
+                int index = search(starts, start);
+                if (index < 0) {
+                    Node chunk = graph.newNode(0, Constants.BEGINNING_OF_TIME);
+                    chunk.set(OMIConstants.CHUNK_START, Type.LONG, start);
+                    insert(chunk, time, value);
+                    starts.insertElementAt(-index - 1, start);
+                    ids.insertElementAt(-index - 1, chunk.id());
+                    ((Relation) resource.getOrCreate(OMIConstants.CHUNKS, Type.RELATION)).add(chunk.id());
+                    chunk.free();
+                    resource.free();
+                    callback.on(true);
+                    return;
+                }
+                chunkId = ids.get(index);
+            }
+            resource.free();
+            graph.lookup(0, Constants.BEGINNING_OF_TIME, chunkId, (Node chunk) -> {
+                synchronized (lock) {
+                    insert(chunk, time, value);
+                }
+                chunk.free();
+                callback.on(true);
+            });
+        });
+    }
+
+    /**
+     * Read the samples of a resource in a time range
+     *
+     * @param graph      Greycat graph
+     * @param resourceId Greycat id of the resource
+     * @param from       Begin of the range (inclusive)
+     * @param to         End of the range (inclusive)
+     * @param callback   Called with the samples ordered by time
+     */
+    public static void range(Graph graph, long resourceId, long from, long to, Callback<Samples> callback) {
+        if (from > to) {
+            callback.on(new Samples(new long[0], new double[0]));
+            return;
+        }
+        graph.lookup(0, Constants.BEGINNING_OF_TIME, resourceId, (Node resource) -> {
+            if (resource == null || resource.get(OMIConstants.CHUNK_SIZE) == null) {
+                if (resource != null) {
+                    resource.free();
+                }
+                callback.on(new Samples(new long[0], new double[0]));
+                return;
+            }
+            long size = (long) resource.get(OMIConstants.CHUNK_SIZE);
+            LongArray starts = (LongArray) resource.get(OMIConstants.CHUNK_STARTS);
+            LongArray ids = (LongArray) resource.get(OMIConstants.CHUNK_IDS);
+            if (starts == null || ids == null) {
+                resource.free();
+                callback.on(new Samples(new long[0], new double[0]));
+                return;
+            }
+            // First chunk whose bucket ends after 'from', last chunk whose bucket starts before 'to'
+            int first = search(starts, from - Math.floorMod(from, size));
+            first = first >= 0 ? first : -first - 1;
+            int last = search(starts, to - Math.floorMod(to, size));
+            last = last >= 0 ? last : -last - 2;
+            if (first > last) {
+                resource.free();
+                callback.on(new Samples(new long[0], new double[0]));
+                return;
+            }
+            long[] chunkIds = new long[last - first + 1];
+            for (int i = 0; i < chunkIds.length; i++) {
+                chunkIds[i] = ids.get(first + i);
+            }
+            resource.free();
+            graph.lookupAll(0, Constants.BEGINNING_OF_TIME, chunkIds, (Node[] chunks) -> {
+                int count = 0;
+                int[] begins = new int[chunks.length];
+                int[] ends = new int[chunks.length];
+                for (int i = 0; i < chunks.length; i++) {
+                    LongArray times = (LongArray) chunks[i].get(OMIConstants.CHUNK_TIMES);
+                    if (times == null) {
+                        continue;
+                    }
+                    int begin = search(times, from);
+                    begins[i] = begin >= 0 ? begin : -begin - 1;
+                    int end = search(times, to);
+                    ends[i] = end >= 0 ? end + 1 : -end - 1;
+                    count += ends[i] - begins[i];
+                }
+                long[] resultTimes = new long[count];
+                double[] resultValues = new double[count];
+                int offset = 0;
+                for (int i = 0; i < chunks.length; i++) {
+                    LongArray times = (LongArray) chunks[i].get(OMIConstants.CHUNK_TIMES);
+                    DoubleArray values = (DoubleArray) chunks[i].get(OMIConstants.CHUNK_VALUES);
+                    for (int j = begins[i]; j < ends[i]; j++) {
+                        resultTimes[offset] = times.get(j);
+                        resultValues[offset] = values.get(j);
+                        offset++;
+                    }
+                    chunks[i].free();
+                }
+                callback.on(new Samples(resultTimes, resultValues));
+            });
+        });
+    }
+
+    /**
+     * Get the timestamp of the most recent sample of a resource
+     *
+     * @param graph      Greycat graph
+     * @param resourceId Greycat id of the resource
+     * @param callback   Called with the timestamp, 0 if no sample is stored
+     */
+    public static void last(Graph graph, long resourceId, Callback<Long> callback) {
+        graph.lookup(0, Constants.BEGINNING_OF_TIME, resourceId, (Node resource) -> {
+            LongArray ids = resource == null ? null : (LongArray) resource.get(OMIConstants.CHUNK_IDS);
+            if (ids == null || ids.size() == 0) {
+                if (resource != null) {
+                    resource.free();
+                }
+                callback.on(0L);
+                return;
+            }
+            long lastChunk = ids.get(ids.size() - 1);
+            resource.free();
+            graph.lookup(0, Constants.BEGINNING_OF_TIME, lastChunk, (Node chunk) -> {
+                LongArray times = (LongArray) chunk.get(OMIConstants.CHUNK_TIMES);
+                long result = times == null || times.size() == 0 ? 0L : times.get(times.size() - 1);
+                chunk.free();
+                callback.on(result);
+            });
+        });
+    }
+
+    /**
+     * Release the append lock of a resource, once it is removed from its scheduler
+     *
+     * @param graph      Greycat graph
+     * @param resourceId Greycat id of the resource
+     */
+    public static void forget(Graph graph, long resourceId) {
+        synchronized (LOCKS) {
+            ConcurrentHashMap<Long, Object> locks = LOCKS.get(graph);
+            if (locks != null) {
+                locks.remove(resourceId);
+            }
+        }
+    }
+
+    private static Object lock(Graph graph, long resourceId) {
+        ConcurrentHashMap<Long, Object> locks;
+        synchronized (LOCKS) {
+            locks = LOCKS.computeIfAbsent(graph, key -> new ConcurrentHashMap<>());
+        }
+        return locks.computeIfAbsent(resourceId, key -> new Object());
+    }
+
+    private static void insert(Node chunk, long time, double value) {
+        LongArray times = (LongArray) chunk.getOrCreate(OMIConstants.CHUNK_TIMES, Type.LONG_ARRAY);
+        DoubleArray values = (DoubleArray) chunk.getOrCreate(OMIConstants.CHUNK_VALUES, Type.DOUBLE_ARRAY);
+        int size = times.size();
+        if (size == 0 || times.get(size - 1) < time) {
+            // Samples mostly come in order
+            times.addElement(time);
+            values.addElement(value);
+            return;
+        }
+        int index = search(times, time);
+        if (index >= 0) {
+            values.set(index, value);
+        } else {
+            times.insertElementAt(-index - 1, time);
+            values.insertElementAt(-index - 1, value);
+        }
+    }
+
+    /**
+     * Binary search of a sorted array
+     *
+     * @return Index of the key if found, (-(insertion point) - 1) otherwise
+     */
+    private static int search(LongArray array, long key) {
+        int low = 0;
+        int high = array.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = array.get(mid);
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Samples read from the chunks of a resource
+     */
+    public static class Samples {
+
+        private final long[] _times;
+        private final double[] _values;
+
+        Samples(long[] times, double[] values) {
+            _times = times;
+            _values = values;
+        }
+
+        public long[] times() {
+            return _times;
+        }
+
+        public double[] values() {
+            return _values;
+        }
+
+        public int size() {
+            return _times.length;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2017 The GreyCat Authors.  All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package omi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OMILimiterTest {
+
+    private static final long WAIT = 5000;
+
+    private FakeChannel _channel;
+    private OMILimiter _limiter;
+
+    @Before
+    public void setUp() {
+        _channel = new FakeChannel();
+        _limiter = new OMILimiter(_channel, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        _limiter.stop();
+    }
+
+    @Test
+    public void holdsRequestsWhileDisconnected() throws InterruptedException {
+        _limiter.submit("a", "write a", OMILimiter.PRIORITY_WRITE);
+        Thread.sleep(300);
+        assertEquals(0, _channel.sent().size());
+        assertEquals(1, _limiter.getQueueSize());
+
+        _channel.connected = true;
+        await(() -> _channel.sent().size() == 1);
+        assertEquals(0, _limiter.getQueueSize());
+        assertEquals(1, _limiter.getInFlight());
+    }
+
+    @Test
+    public void sendsWritesFirstThenOverdueReads() {
+        _limiter.submit("r", "read r", OMILimiter.PRIORITY_READ);
+        _limiter.submit("o", "read o", OMILimiter.PRIORITY_OVERDUE_READ);
+        _limiter.submit("w1", "write w1", OMILimiter.PRIORITY_WRITE);
+        _limiter.submit("w2", "write w2", OMILimiter.PRIORITY_WRITE);
+
+        _channel.connected = true;
+        await(() -> _channel.sent().size() == 4);
+        assertEquals(Arrays.asList("write w1", "write w2", "read o", "read r"), _channel.sent());
+        assertTrue(_limiter.lastDispatch("r") > 0);
+        assertEquals(0, _limiter.lastDispatch("unknown"));
+    }
+
+    @Test
+    public void matchesResponsesToRequestsInFlight() {
+        _channel.connected = true;
+        _limiter.submit("a", "write a", OMILimiter.PRIORITY_WRITE);
+        _limiter.submit("b", "write b", OMILimiter.PRIORITY_WRITE);
+        await(() -> _channel.sent().size() == 2);
+        assertEquals(2, _limiter.getInFlight());
+
+        _limiter.onResponse(200);
+        assertEquals(1, _limiter.getInFlight());
+        _limiter.onResponse(200);
+        assertEquals(0, _limiter.getInFlight());
+        // Unsolicited responses are ignored
+        _limiter.onResponse(200);
+        assertEquals(0, _limiter.getInFlight());
+    }
+
+    @Test
+    public void holdsRequestsOnceTheLimitIsInFlight() throws InterruptedException {
+        _channel.connected = true;
+        int limit = _limiter.getLimit();
+        for (int i = 0; i <= limit; i++) {
+            _limiter.submit("w" + i, "write " + i, OMILimiter.PRIORITY_WRITE);
+        }
+        await(() -> _channel.sent().size() == limit);
+        Thread.sleep(300);
+        assertEquals(limit, _channel.sent().size());
+        assertEquals(1, _limiter.getQueueSize());
+
+        _limiter.onResponse(200);
+        await(() -> _channel.sent().size() == limit + 1);
+    }
+
+    @Test
+    public void backsOffOnServerErrors() {
+        _channel.connected = true;
+        int limit = _limiter.getLimit();
+        double rate = _limiter.getRate();
+        _limiter.submit("a", "write a", OMILimiter.PRIORITY_WRITE);
+        await(() -> _channel.sent().size() == 1);
+
+        _limiter.onResponse(500);
+        assertEquals(limit / 2, _limiter.getLimit());
+        assertEquals(rate / 2, _limiter.getRate(), 0.001);
+        assertEquals(0, _limiter.getInFlight());
+    }
+
+    @Test
+    public void discardsLateResponsesOfTimedOutRequests() {
+        _channel.connected = true;
+        _limiter.submit("a", "write a", OMILimiter.PRIORITY_WRITE);
+        await(() -> _channel.sent().size() == 1);
+        // No response within the timeout
+        await(() -> _limiter.getInFlight() == 0);
+
+        _limiter.submit("b", "write b", OMILimiter.PRIORITY_WRITE);
+        await(() -> _channel.sent().size() == 2);
+        // The late response of 'a' must not be matched to 'b'
+        _limiter.onResponse(200);
+        assertEquals(1, _limiter.getInFlight());
+        _limiter.onResponse(200);
+        assertEquals(0, _limiter.getInFlight());
+    }
+
+    @Test
+    public void requeuesFailedWrites() {
+        _channel.connected = true;
+        _channel.failures.set(1);
+        _limiter.submit("a", "write a", OMILimiter.PRIORITY_WRITE);
+        await(() -> _channel.sent().size() == 2);
+        assertEquals(Arrays.asList("write a", "write a"), _channel.sent());
+        assertEquals(1, _limiter.getInFlight());
+        assertEquals(0, _limiter.getQueueSize());
+    }
+
+    @Test
+    public void dropsExpiredRequests() {
+        long now = System.currentTimeMillis();
+        _limiter.submit("a", "read a", OMILimiter.PRIORITY_READ, now - 1);
+        _limiter.submit("w", "write w", OMILimiter.PRIORITY_WRITE, now - 1);
+        _limiter.submit("b", "read b", OMILimiter.PRIORITY_READ, now + 60000);
+
+        _channel.connected = true;
+        await(() -> _limiter.getQueueSize() == 0);
+        await(() -> _channel.sent().size() == 1);
+        assertEquals(Arrays.asList("read b"), _channel.sent());
+        assertEquals(2, _limiter.getExpiredCount());
+        assertEquals(0, _limiter.lastDispatch("a"));
+    }
+
+    @Test
+    public void mergesQueuedReadsOfTheSameResource() {
+        long deadline = System.currentTimeMillis() + 60000;
+        _limiter.submit("a", "read a1", OMILimiter.PRIORITY_READ, deadline);
+        _limiter.submit("b", "read b", OMILimiter.PRIORITY_READ, deadline);
+        _limiter.submit("a", "read a2", OMILimiter.PRIORITY_READ, deadline);
+        _limiter.submit("a", "read a3", OMILimiter.PRIORITY_READ, deadline);
+        assertEquals(2, _limiter.getQueueSize());
+        assertEquals(2, _limiter.getSupersededCount());
+
+        _channel.connected = true;
+        await(() -> _channel.sent().size() == 2);
+        // The newest message keeps the place of the first one
+        assertEquals(Arrays.asList("read a3", "read b"), _channel.sent());
+    }
+
+    @Test
+    public void upgradesSupersededReadsWhenOverdue() {
+        long deadline = System.currentTimeMillis() + 60000;
+        _limiter.submit("a", "read a", OMILimiter.PRIORITY_READ, deadline);
+        _limiter.submit("b", "read b1", OMILimiter.PRIORITY_READ, deadline);
+        _limiter.submit("b", "read b2", OMILimiter.PRIORITY_OVERDUE_READ, deadline);
+        // A regular read does not downgrade an overdue one
+        _limiter.submit("b", "read b3", OMILimiter.PRIORITY_READ, deadline);
+
+        _channel.connected = true;
+        await(() -> _channel.sent().size() == 2);
+        assertEquals(Arrays.asList("read b3", "read a"), _channel.sent());
+        assertEquals(2, _limiter.getSupersededCount());
+    }
+
+    @Test
+    public void neverMergesWrites() {
+        _limiter.submit("a", "write a1", OMILimiter.PRIORITY_WRITE);
+        _limiter.submit("a", "write a2", OMILimiter.PRIORITY_WRITE);
+        assertEquals(2, _limiter.getQueueSize());
+        assertEquals(0, _limiter.getSupersededCount());
+
+        _channel.connected = true;
+        await(() -> _channel.sent().size() == 2);
+        assertEquals(Arrays.asList("write a1", "write a2"), _channel.sent());
+    }
+
+    @Test
+    public void dropsQueuedReadsOfForgottenResources() throws InterruptedException {
+        _limiter.submit("a", "read a", OMILimiter.PRIORITY_READ, System.currentTimeMillis() + 60000);
+        _limiter.forget("a");
+        assertEquals(0, _limiter.getQueueSize());
+
+        _channel.connected = true;
+        Thread.sleep(300);
+        assertEquals(0, _channel.sent().size());
+    }
+
+    static void await(BooleanSupplier condition) {
+        long end = System.currentTimeMillis() + WAIT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end) {
+                throw new AssertionError("Condition not met within " + WAIT + "ms");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * Channel recording the messages sent, whose writes can be made to fail
+     */
+    static class FakeChannel implements OMILimiter.Channel {
+
+        volatile boolean connected = false;
+        final AtomicInteger failures = new AtomicInteger();
+        private final List<String> _sent = new ArrayList<>();
+
+        @Override
+        public String getUrl() {
+            return "wss://localhost/";
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean send(String message, Runnable onFailure) {
+            if (!connected) {
+                return false;
+            }
+            synchronized (_sent) {
+                _sent.add(message);
+            }
+            if (failures.getAndDecrement() > 0) {
+                onFailure.run();
+            }
+            return true;
+        }
+
+        List<String> sent() {
+            synchronized (_sent) {
+                return new ArrayList<>(_sent);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2017 The GreyCat Authors.  All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package omi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OMIPathTrieTest {
+
+    @Test
+    public void routesRegisteredResources() {
+        OMIPathTrie trie = new OMIPathTrie();
+        assertTrue(trie.put("K1/101/co2", "value", 1));
+        assertTrue(trie.put("K1/101/co2", "unit", 2));
+        assertTrue(trie.put("K1/102/co2", "value", 3));
+        assertTrue(trie.put("K1/101", null, 4));
+
+        assertEquals(1, trie.route(new String[]{"K1", "101", "co2"}, "value"));
+        assertEquals(2, trie.route(new String[]{"K1", "101", "co2"}, "unit"));
+        assertEquals(3, trie.route(new String[]{"K1", "102", "co2"}, "value"));
+        assertEquals(4, trie.route(new String[]{"K1", "101"}, null));
+    }
+
+    @Test
+    public void doesNotRouteUnknownResources() {
+        OMIPathTrie trie = new OMIPathTrie();
+        trie.put("K1/101/co2", "value", 1);
+
+        assertEquals(OMIPathTrie.NOT_FOUND, trie.route(new String[]{"K1", "101", "co2"}, "unit"));
+        assertEquals(OMIPathTrie.NOT_FOUND, trie.route(new String[]{"K1", "101"}, "value"));
+        assertEquals(OMIPathTrie.NOT_FOUND, trie.route(new String[]{"K2", "101", "co2"}, "value"));
+        assertEquals(OMIPathTrie.NOT_FOUND, trie.route(new String[]{"K1", "101", "co2", "deeper"}, "value"));
+    }
+
+    @Test
+    public void refusesDuplicates() {
+        OMIPathTrie trie = new OMIPathTrie();
+        assertTrue(trie.put("K1/101/co2", "value", 1));
+        assertFalse(trie.put("K1/101/co2", "value", 2));
+        assertEquals(1, trie.route(new String[]{"K1", "101", "co2"}, "value"));
+    }
+
+    @Test
+    public void sharesInternedSegments() {
+        OMIPathTrie trie = new OMIPathTrie();
+        trie.put("K1/101/co2", "value", 1);
+        trie.put(new String("K1/101/temperature"), "value", 2);
+
+        OMIPathTrie.Node k1 = trie.root().child("K1");
+        assertEquals(1, trie.root().children().size());
+        assertEquals(2, k1.child("101").children().size());
+        assertSame(trie.segments("K1/101/co2")[1], trie.segments("K1/101/temperature")[1]);
+    }
+
+    @Test
+    public void returnsCopiesOfRegisteredSegments() {
+        OMIPathTrie trie = new OMIPathTrie();
+        assertNull(trie.segments("K1/101/co2"));
+        trie.put("K1/101/co2", "value", 1);
+
+        String[] segments = trie.segments("K1/101/co2");
+        assertArrayEquals(new String[]{"K1", "101", "co2"}, segments);
+        segments[0] = "changed";
+        assertArrayEquals(new String[]{"K1", "101", "co2"}, trie.segments("K1/101/co2"));
+        assertNotSame(trie.segments("K1/101/co2"), trie.segments("K1/101/co2"));
+    }
+
+    @Test
+    public void removesAndPrunesEmptyBranches() {
+        OMIPathTrie trie = new OMIPathTrie();
+        trie.put("K1/101/co2", "value", 1);
+        trie.put("K1/101/co2", "unit", 2);
+        trie.put("K1/102/co2", "value", 3);
+
+        assertTrue(trie.remove("K1/101/co2", "value"));
+        assertFalse(trie.remove("K1/101/co2", "value"));
+        assertEquals(OMIPathTrie.NOT_FOUND, trie.route(new String[]{"K1", "101", "co2"}, "value"));
+        assertEquals(2, trie.route(new String[]{"K1", "101", "co2"}, "unit"));
+        // Still used by 'unit'
+        assertArrayEquals(new String[]{"K1", "101", "co2"}, trie.segments("K1/101/co2"));
+
+        assertTrue(trie.remove("K1/101/co2", "unit"));
+        assertNull(trie.segments("K1/101/co2"));
+        assertNull(trie.root().child("K1").child("101"));
+        assertEquals(3, trie.route(new String[]{"K1", "102", "co2"}, "value"));
+
+        assertTrue(trie.remove("K1/102/co2", "value"));
+        assertTrue(trie.root().children().isEmpty());
+    }
+
+    @Test
+    public void ignoresRemovalOfUnknownResources() {
+        OMIPathTrie trie = new OMIPathTrie();
+        trie.put("K1/101/co2", "value", 1);
+
+        assertFalse(trie.remove("K1/101/co2", "unit"));
+        assertFalse(trie.remove("K1/102/co2", "value"));
+        assertEquals(1, trie.route(new String[]{"K1", "101", "co2"}, "value"));
+        assertArrayEquals(new String[]{"K1", "101", "co2"}, trie.segments("K1/101/co2"));
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2017 The GreyCat Authors.  All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package omi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OMIRecorderTest {
+
+    private File _log;
+    private File _truncated;
+
+    @Before
+    public void setUp() throws IOException {
+        _log = File.createTempFile("omi-recorder", ".log");
+        _truncated = File.createTempFile("omi-recorder", ".truncated");
+    }
+
+    @After
+    public void tearDown() {
+        _log.delete();
+        _truncated.delete();
+    }
+
+    @Test
+    public void readsBackTheRecordedFrames() throws IOException {
+        List<OMIRecorder.Resource> resources = Arrays.asList(
+                new OMIRecorder.Resource("co2", "K1/101/co2", OMIConstants.READ, "value", 2000, OMIConstants.NEWEST, OMIConstants.STORAGE_COMPACT),
+                new OMIRecorder.Resource("setpoint", "K1/101/setpoint", OMIConstants.WRITE, null, 0, null, null));
+        long begin = System.currentTimeMillis();
+        OMIRecorder recorder = new OMIRecorder(_log.getPath(), "wss://localhost/", resources);
+        recorder.record(OMIRecorder.SENT, "<omiEnvelope>request</omiEnvelope>");
+        recorder.record(OMIRecorder.RECEIVED, "<omiEnvelope>r\u00e9ponse \ud83c\udf21</omiEnvelope>");
+        recorder.record(OMIRecorder.RECEIVED, "");
+        recorder.close();
+        long end = System.currentTimeMillis();
+
+        OMIRecorder.Reader reader = new OMIRecorder.Reader(_log.getPath());
+        assertEquals("wss://localhost/", reader.url());
+        assertEquals(2, reader.resources().size());
+        OMIRecorder.Resource co2 = reader.resources().get(0);
+        assertEquals("co2", co2.id());
+        assertEquals("K1/101/co2", co2.path());
+        assertEquals(OMIConstants.READ, co2.action());
+        assertEquals("value", co2.infoItem());
+        assertEquals(2000, co2.period());
+        assertEquals(OMIConstants.NEWEST, co2.mode());
+        assertEquals(OMIConstants.STORAGE_COMPACT, co2.storage());
+        OMIRecorder.Resource setpoint = reader.resources().get(1);
+        assertEquals(OMIConstants.WRITE, setpoint.action());
+        assertNull(setpoint.infoItem());
+        assertNull(setpoint.mode());
+        assertNull(setpoint.storage());
+
+        assertTrue(reader.next());
+        assertEquals(OMIRecorder.SENT, reader.direction());
+        assertEquals("<omiEnvelope>request</omiEnvelope>", reader.message());
+        assertTrue(reader.time() >= begin && reader.time() <= end);
+        long previous = reader.time();
+        assertTrue(reader.next());
+        assertEquals(OMIRecorder.RECEIVED, reader.direction());
+        assertEquals("<omiEnvelope>r\u00e9ponse \ud83c\udf21</omiEnvelope>", reader.message());
+        assertTrue(reader.time() >= previous && reader.time() <= end);
+        assertTrue(reader.next());
+        assertEquals("", reader.message());
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void ignoresFramesRecordedOnceClosed() throws IOException {
+        OMIRecorder recorder = new OMIRecorder(_log.getPath(), "wss://localhost/", Collections.emptyList());
+        recorder.record(OMIRecorder.RECEIVED, "before");
+        recorder.close();
+        recorder.record(OMIRecorder.RECEIVED, "after");
+        recorder.flush();
+        recorder.close();
+
+        assertEquals(Collections.singletonList("before"), read(_log));
+    }
+
+    @Test
+    public void readsFlushedFramesOfAnUnclosedRecorder() throws IOException {
+        OMIRecorder recorder = new OMIRecorder(_log.getPath(), "wss://localhost/", Collections.emptyList());
+        for (int i = 0; i < 100; i++) {
+            recorder.record(OMIRecorder.RECEIVED, "frame " + i);
+        }
+        recorder.flush();
+
+        // As left by a killed gateway
+        assertEquals(100, read(_log).size());
+        recorder.close();
+    }
+
+    @Test
+    public void readsTruncatedLogsUpToTheLastCompleteFrame() throws IOException {
+        OMIRecorder recorder = new OMIRecorder(_log.getPath(), "wss://localhost/", Collections.emptyList());
+        List<String> frames = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String frame = "frame " + i;
+            frames.add(frame);
+            recorder.record(OMIRecorder.RECEIVED, frame);
+        }
+        recorder.close();
+        byte[] content = Files.readAllBytes(_log.toPath());
+
+        // Without the gzip trailer, then cut in the middle of the frames
+        for (int cut : new int[]{8, 20, content.length / 2}) {
+            try (FileOutputStream out = new FileOutputStream(_truncated)) {
+                out.write(content, 0, content.length - cut);
+            }
+            List<String> read = read(_truncated);
+            assertTrue(read.size() <= frames.size());
+            assertEquals(frames.subList(0, read.size()), read);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesOtherFiles() throws IOException {
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(_log))) {
+            out.write("not a recorder log".getBytes("UTF-8"));
+        }
+        new OMIRecorder.Reader(_log.getPath());
+    }
+
+    private static List<String> read(File log) throws IOException {
+        List<String> messages = new ArrayList<>();
+        OMIRecorder.Reader reader = new OMIRecorder.Reader(log.getPath());
+        while (reader.next()) {
+            messages.add(reader.message());
+        }
+        reader.close();
+        return messages;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2017 The GreyCat Authors.  All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package omi;
+
+import greycat.Constants;
+import greycat.Graph;
+import greycat.GraphBuilder;
+import greycat.Node;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OMITimeSeriesTest {
+
+    private static final long CHUNK_SIZE = 1000;
+
+    private Graph _graph;
+    private long _resource;
+
+    @Before
+    public void setUp() {
+        // In-memory storage
+        _graph = new GraphBuilder().build();
+        CountDownLatch connected = new CountDownLatch(1);
+        _graph.connect(result -> connected.countDown());
+        await(connected);
+        Node resource = _graph.newNode(0, Constants.BEGINNING_OF_TIME);
+        _resource = resource.id();
+        resource.free();
+    }
+
+    @After
+    public void tearDown() {
+        CountDownLatch disconnected = new CountDownLatch(1);
+        _graph.disconnect(result -> disconnected.countDown());
+        await(disconnected);
+    }
+
+    @Test
+    public void readsInclusiveBoundsAcrossChunks() {
+        for (long time : new long[]{0, 500, 999, 1000, 1500, 2999, 3000}) {
+            append(time, time / 10.0);
+        }
+
+        OMITimeSeries.Samples samples = range(500, 2999);
+        assertArrayEquals(new long[]{500, 999, 1000, 1500, 2999}, samples.times());
+        assertArrayEquals(new double[]{50, 99.9, 100, 150, 299.9}, samples.values(), 0);
+
+        assertArrayEquals(new long[]{1000}, range(1000, 1000).times());
+        assertArrayEquals(new long[]{999, 1000}, range(999, 1000).times());
+        assertArrayEquals(new long[]{0, 500, 999, 1000, 1500, 2999, 3000}, range(Long.MIN_VALUE / 2, Long.MAX_VALUE / 2).times());
+    }
+
+    @Test
+    public void readsNothingOutsideTheSamples() {
+        append(1000, 1);
+        append(1500, 2);
+
+        assertEquals(0, range(0, 999).size());
+        assertEquals(0, range(1501, 1999).size());
+        assertEquals(0, range(2000, 5000).size());
+        assertEquals(0, range(1200, 1400).size());
+        // Inverted ranges
+        assertEquals(0, range(1500, 1000).size());
+        assertEquals(0, range(1600, 1100).size());
+    }
+
+    @Test
+    public void skipsMissingChunks() {
+        append(0, 1);
+        append(5000, 2);
+
+        assertEquals(0, range(100, 4999).size());
+        assertArrayEquals(new long[]{0, 5000}, range(0, 5000).times());
+        assertArrayEquals(new long[]{5000}, range(2500, 5500).times());
+    }
+
+    @Test
+    public void sortsSamplesAndOverwritesDuplicates() {
+        append(30, 3);
+        append(10, 1);
+        append(20, 2);
+        append(10, 10);
+
+        OMITimeSeries.Samples samples = range(0, 100);
+        assertArrayEquals(new long[]{10, 20, 30}, samples.times());
+        assertArrayEquals(new double[]{10, 2, 3}, samples.values(), 0);
+    }
+
+    @Test
+    public void readsTheLastSample() {
+        assertEquals(0, last());
+        append(1500, 1);
+        append(500, 2);
+        assertEquals(1500, last());
+        append(2500, 3);
+        assertEquals(2500, last());
+    }
+
+    @Test
+    public void readsEmptyResources() {
+        assertEquals(0, range(0, 1000).size());
+    }
+
+    @Test
+    public void refusesUnknownResources() {
+        CountDownLatch done = new CountDownLatch(1);
+        boolean[] stored = {true};
+        OMITimeSeries.append(_graph, _resource + 1000, 0, 1, CHUNK_SIZE, result -> {
+            stored[0] = result;
+            done.countDown();
+        });
+        await(done);
+        assertFalse(stored[0]);
+    }
+
+    private void append(long time, double value) {
+        CountDownLatch done = new CountDownLatch(1);
+        OMITimeSeries.append(_graph, _resource, time, value, CHUNK_SIZE, result -> {
+            assertTrue(result);
+            done.countDown();
+        });
+        await(done);
+    }
+
+    private OMITimeSeries.Samples range(long from, long to) {
+        CountDownLatch done = new CountDownLatch(1);
+        OMITimeSeries.Samples[] samples = new OMITimeSeries.Samples[1];
+        OMITimeSeries.range(_graph, _resource, from, to, result -> {
+            samples[0] = result;
+            done.countDown();
+        });
+        await(done);
+        return samples[0];
+    }
+
+    private long last() {
+        CountDownLatch done = new CountDownLatch(1);
+        long[] last = new long[1];
+        OMITimeSeries.last(_graph, _resource, result -> {
+            last[0] = result;
+            done.countDown();
+        });
+        await(done);
+        return last[0];
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}